@@ -0,0 +1,640 @@
+package top.sealight;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.InvalidPathException;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * 基于 NIO 的客户端引擎：单个 I/O 线程通过 Selector 同时处理聊天消息与文件传输连接，
+ * 发送队列中积压的消息会被合并到同一个缓冲区后一次性写出。
+ * <p>
+ * 每个实例只能连接一次，关闭后需要重新创建实例。所有 {@link Listener} 回调都在 I/O 线程中执行，
+ * 回调内不应做耗时操作；回调抛出的异常会通过 {@link Listener#onError} 报告，不会中断 I/O 线程。
+ * <p>
+ * 文件内容同样在 I/O 线程中写入磁盘，磁盘很慢时仍会拖慢聊天消息。每次传输都会写入新的
+ * {@code received_<文件名>}，重名时追加序号，不会覆盖已有文件。
+ */
+public class NioSocketClient implements Closeable {
+    private static final String SERVER_COMMAND_DISCONNECT = "SERVER_COMMAND_DISCONNECT:";
+    private static final String FILE_TRANSFER_COMMAND = "FILE_TRANSFER_PORT:";
+    private static final String MSG_FIN = "MSG_FIN";
+    private static final String RECEIVED_FILE_PREFIX = "received_";
+    private static final int READ_BUFFER_SIZE = 8192;
+    static final int WRITE_BUFFER_SIZE = 64 * 1024;
+    static final int DEFAULT_QUEUE_CAPACITY = 10_000;
+    private static final long CLOSE_TIMEOUT_MILLIS = 5000;
+
+    /**
+     * 客户端事件回调
+     */
+    public interface Listener {
+        /**
+         * 收到服务器发来的一行普通消息
+         */
+        void onMessage(String message);
+
+        /**
+         * 文件接收完成
+         */
+        default void onFileReceived(File file) {
+        }
+
+        /**
+         * 服务器主动断开或连接异常断开，主动调用 close() 时不会触发
+         */
+        default void onDisconnect(String reason) {
+        }
+
+        /**
+         * 已被 send() 接受但在连接关闭前未能写出的消息
+         */
+        default void onSendFailed(List<String> messages) {
+        }
+
+        /**
+         * 通信过程中或回调中出现异常
+         */
+        default void onError(Exception e) {
+        }
+    }
+
+    private enum State {
+        NEW, CONNECTING, RUNNING, CLOSING, CLOSED
+    }
+
+    private final String serverIP;
+    private final int port;
+    private final Listener listener;
+    private final File downloadDir;
+
+    // 待发送消息队列，任意线程入队，由 I/O 线程统一写出；容量有限，队列满时 send 失败或等待
+    private final BlockingQueue<String> outbound;
+    private final AtomicReference<State> state = new AtomicReference<>(State.NEW);
+    // 避免每次 send 都唤醒 Selector
+    private final AtomicBoolean wakeupPending = new AtomicBoolean(false);
+
+    // 以下字段只由 I/O 线程访问
+    private final ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+    private final ByteArrayOutputStream lineBuffer = new ByteArrayOutputStream();
+    private String pendingMessage;
+    private byte[] pendingFrame;
+    // 已放入写缓冲区但还没完整写出的消息，按写出进度出队
+    private final Deque<BufferedMessage> inFlight = new ArrayDeque<>();
+    private long bufferedBytes;
+    private long writtenBytes;
+    private String disconnectReason;
+
+    // 只由 I/O 线程读写，volatile 仅为测试中读取容量
+    private volatile ByteBuffer writeBuffer = ByteBuffer.allocate(WRITE_BUFFER_SIZE);
+    private volatile Selector selector;
+    private volatile SocketChannel channel;
+    private volatile SelectionKey channelKey;
+    private volatile Thread ioThread;
+
+    public NioSocketClient(String serverIP, int port, Listener listener) {
+        this(serverIP, port, listener, new File("."));
+    }
+
+    public NioSocketClient(String serverIP, int port, Listener listener, File downloadDir) {
+        this(serverIP, port, listener, downloadDir, DEFAULT_QUEUE_CAPACITY);
+    }
+
+    public NioSocketClient(String serverIP, int port, Listener listener, File downloadDir, int queueCapacity) {
+        this.serverIP = serverIP;
+        this.port = port;
+        this.listener = listener;
+        this.downloadDir = downloadDir;
+        this.outbound = new LinkedBlockingQueue<>(queueCapacity);
+    }
+
+    /**
+     * 连接服务器并启动 I/O 线程，每个实例只能调用一次
+     */
+    public void connect() throws IOException {
+        if (!state.compareAndSet(State.NEW, State.CONNECTING)) {
+            throw new IllegalStateException("客户端只能连接一次");
+        }
+        Selector newSelector = null;
+        SocketChannel newChannel = null;
+        boolean started = false;
+        try {
+            InetSocketAddress address = new InetSocketAddress(serverIP, port);
+            if (address.isUnresolved()) {
+                throw new UnknownHostException(serverIP);
+            }
+            newSelector = Selector.open();
+            newChannel = SocketChannel.open(address);
+            newChannel.configureBlocking(false);
+            channelKey = newChannel.register(newSelector, SelectionKey.OP_READ);
+            selector = newSelector;
+            channel = newChannel;
+            ioThread = new Thread(this::runLoop, "nio-client-io");
+            ioThread.setDaemon(true);
+            if (!state.compareAndSet(State.CONNECTING, State.RUNNING)) {
+                // 连接过程中 close() 已被调用
+                throw new ClosedChannelException();
+            }
+            ioThread.start();
+            started = true;
+        } finally {
+            if (!started) {
+                // 包括地址非法等非受检异常，保证不会停留在半初始化状态
+                state.set(State.CLOSED);
+                closeQuietly(newChannel);
+                closeQuietly(newSelector);
+            }
+        }
+    }
+
+    /**
+     * 异步发送一条消息，不等待。返回 false 表示客户端未运行或发送队列已满
+     */
+    public boolean send(String message) {
+        if (state.get() != State.RUNNING || !outbound.offer(message)) {
+            return false;
+        }
+        return afterEnqueue(message);
+    }
+
+    /**
+     * 异步发送一条消息，队列满时最多等待指定时间。返回 false 表示客户端未运行或等待超时
+     */
+    public boolean send(String message, long timeout, TimeUnit unit) throws InterruptedException {
+        if (state.get() != State.RUNNING || !outbound.offer(message, timeout, unit)) {
+            return false;
+        }
+        return afterEnqueue(message);
+    }
+
+    private boolean afterEnqueue(String message) {
+        if (state.get() != State.RUNNING && outbound.remove(message)) {
+            // 入队时客户端已开始关闭，I/O 线程可能已完成最后一次写出，撤回消息
+            return false;
+        }
+        if (wakeupPending.compareAndSet(false, true)) {
+            selector.wakeup();
+        }
+        return true;
+    }
+
+    public boolean isConnected() {
+        return state.get() == State.RUNNING;
+    }
+
+    int writeBufferCapacity() {
+        return writeBuffer.capacity();
+    }
+
+    /**
+     * 关闭客户端，最多用 5 秒写出队列中剩余的消息，未写出的消息通过 onSendFailed 报告
+     */
+    @Override
+    public void close() {
+        if (state.compareAndSet(State.NEW, State.CLOSED) || state.compareAndSet(State.CONNECTING, State.CLOSED)) {
+            return;
+        }
+        if (state.compareAndSet(State.RUNNING, State.CLOSING)) {
+            selector.wakeup();
+        }
+        Thread thread = ioThread;
+        if (thread != null && Thread.currentThread() != thread) {
+            try {
+                thread.join(CLOSE_TIMEOUT_MILLIS + 1000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * I/O 主循环：处理主连接的读写以及所有文件传输连接
+     */
+    private void runLoop() {
+        Exception failure = null;
+        try {
+            while (state.get() == State.RUNNING) {
+                selector.select();
+                wakeupPending.set(false);
+                flushOutbound();
+                processSelectedKeys();
+            }
+            if (state.get() == State.CLOSING) {
+                drainBeforeClose();
+            }
+        } catch (IOException | RuntimeException e) {
+            failure = e;
+        } finally {
+            State previous = state.getAndSet(State.CLOSED);
+            releaseResources();
+            if (failure != null) {
+                fireError(failure);
+            }
+            if (disconnectReason != null) {
+                fireDisconnect(disconnectReason);
+            } else if (failure != null && previous == State.RUNNING) {
+                fireDisconnect("与服务器的连接异常断开");
+            }
+        }
+    }
+
+    private void processSelectedKeys() throws IOException {
+        Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+        while (keys.hasNext()) {
+            SelectionKey key = keys.next();
+            keys.remove();
+            if (!key.isValid()) {
+                continue;
+            }
+            if (key.attachment() instanceof FileReceiver receiver) {
+                handleFileKey(key, receiver);
+            } else {
+                handleChannelKey(key);
+            }
+        }
+    }
+
+    /**
+     * 关闭前以非阻塞方式写出剩余消息，超时后放弃
+     */
+    private void drainBeforeClose() throws IOException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(CLOSE_TIMEOUT_MILLIS);
+        while (!flushOutbound()) {
+            long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+            if (remaining <= 0) {
+                return;
+            }
+            selector.select(remaining);
+            selector.selectedKeys().clear();
+        }
+        channel.shutdownOutput();
+    }
+
+    private void handleChannelKey(SelectionKey key) throws IOException {
+        if (key.isWritable()) {
+            flushOutbound();
+        }
+        if (key.isValid() && key.isReadable()) {
+            readMessages();
+        }
+    }
+
+    /**
+     * 读取主连接数据并按行分发，整段查找换行符后批量拷贝
+     */
+    private void readMessages() throws IOException {
+        int read = channel.read(readBuffer);
+        if (read == -1) {
+            closeByServer("服务器已关闭连接");
+            return;
+        }
+        byte[] data = readBuffer.array();
+        int end = readBuffer.position();
+        int start = 0;
+        try {
+            for (int i = 0; i < end; i++) {
+                if (data[i] != '\n') {
+                    continue;
+                }
+                String line;
+                if (lineBuffer.size() == 0) {
+                    line = new String(data, start, i - start, StandardCharsets.UTF_8);
+                } else {
+                    lineBuffer.write(data, start, i - start);
+                    line = lineBuffer.toString(StandardCharsets.UTF_8);
+                    lineBuffer.reset();
+                }
+                start = i + 1;
+                dispatchLine(line);
+                if (state.get() != State.RUNNING) {
+                    return;
+                }
+            }
+            lineBuffer.write(data, start, end - start);
+        } finally {
+            readBuffer.clear();
+        }
+    }
+
+    private void dispatchLine(String line) {
+        if (line.endsWith("\r")) {
+            line = line.substring(0, line.length() - 1);
+        }
+
+        if (line.startsWith(SERVER_COMMAND_DISCONNECT)) {
+            closeByServer(line.substring(SERVER_COMMAND_DISCONNECT.length()));
+            return;
+        }
+        if (line.startsWith(FILE_TRANSFER_COMMAND)) {
+            startFileTransfer(line);
+            return;
+        }
+        try {
+            listener.onMessage(line);
+        } catch (RuntimeException e) {
+            fireError(e);
+        }
+    }
+
+    private void closeByServer(String reason) {
+        if (state.compareAndSet(State.RUNNING, State.CLOSED)) {
+            disconnectReason = reason;
+        }
+    }
+
+    /**
+     * 将发送队列中的消息合并写入缓冲区后写出，写不完时关注 OP_WRITE。返回 true 表示已全部写出
+     */
+    private boolean flushOutbound() throws IOException {
+        int readOps = state.get() == State.RUNNING ? SelectionKey.OP_READ : 0;
+        while (true) {
+            fillWriteBuffer();
+            if (writeBuffer.position() == 0) {
+                channelKey.interestOps(readOps);
+                return true;
+            }
+            writeBuffer.flip();
+            writtenBytes += channel.write(writeBuffer);
+            boolean drained = !writeBuffer.hasRemaining();
+            writeBuffer.compact();
+            if (drained && writeBuffer.capacity() > WRITE_BUFFER_SIZE) {
+                // 超大消息写完后恢复默认大小，避免长期占用内存
+                writeBuffer = ByteBuffer.allocate(WRITE_BUFFER_SIZE);
+            }
+            while (!inFlight.isEmpty() && inFlight.peekFirst().endOffset <= writtenBytes) {
+                inFlight.pollFirst();
+            }
+            if (!drained) {
+                channelKey.interestOps(readOps | SelectionKey.OP_WRITE);
+                return false;
+            }
+        }
+    }
+
+    private void fillWriteBuffer() {
+        while (true) {
+            if (pendingFrame == null) {
+                String message = outbound.poll();
+                if (message == null) {
+                    return;
+                }
+                pendingMessage = message;
+                pendingFrame = (message + MSG_FIN + "\n").getBytes(StandardCharsets.UTF_8);
+            }
+            if (pendingFrame.length > writeBuffer.remaining()) {
+                if (writeBuffer.position() > 0) {
+                    // 缓冲区已有数据，先写出再继续合并
+                    return;
+                }
+                // 超出默认缓冲区的大消息，按需扩容
+                writeBuffer = ByteBuffer.allocate(pendingFrame.length);
+            }
+            writeBuffer.put(pendingFrame);
+            bufferedBytes += pendingFrame.length;
+            inFlight.addLast(new BufferedMessage(pendingMessage, bufferedBytes));
+            pendingMessage = null;
+            pendingFrame = null;
+        }
+    }
+
+    /**
+     * 为文件传输建立非阻塞连接并注册到同一个 Selector
+     */
+    private void startFileTransfer(String line) {
+        SocketChannel fileChannel = null;
+        try {
+            int filePort = Integer.parseInt(line.substring(FILE_TRANSFER_COMMAND.length()).trim());
+            fileChannel = SocketChannel.open();
+            fileChannel.configureBlocking(false);
+            FileReceiver receiver = new FileReceiver(fileChannel);
+            if (fileChannel.connect(new InetSocketAddress(serverIP, filePort))) {
+                fileChannel.register(selector, SelectionKey.OP_READ, receiver);
+            } else {
+                fileChannel.register(selector, SelectionKey.OP_CONNECT, receiver);
+            }
+        } catch (IOException | NumberFormatException e) {
+            closeQuietly(fileChannel);
+            fireError(e);
+        }
+    }
+
+    private void handleFileKey(SelectionKey key, FileReceiver receiver) {
+        try {
+            if (key.isConnectable()) {
+                receiver.channel.finishConnect();
+                key.interestOps(SelectionKey.OP_READ);
+                return;
+            }
+            if (key.isReadable() && receiver.read()) {
+                key.cancel();
+                receiver.close();
+                fireFileReceived(receiver.target);
+            }
+        } catch (IOException | InvalidPathException e) {
+            key.cancel();
+            receiver.abort();
+            fireError(e);
+        }
+    }
+
+    /**
+     * 关闭所有连接，并把未写出的消息交给 onSendFailed
+     */
+    private void releaseResources() {
+        for (SelectionKey key : selector.keys()) {
+            // 已完成的传输 key 已取消，但要到下一次 select 才会从 keys() 中移除
+            if (key.isValid() && key.attachment() instanceof FileReceiver receiver) {
+                receiver.abort();
+                fireError(new EOFException("文件传输被中断: " + receiver.describe()));
+            }
+        }
+        closeQuietly(selector);
+        closeQuietly(channel);
+
+        List<String> undelivered = new ArrayList<>();
+        for (BufferedMessage message : inFlight) {
+            undelivered.add(message.message);
+        }
+        inFlight.clear();
+        if (pendingMessage != null) {
+            undelivered.add(pendingMessage);
+            pendingMessage = null;
+            pendingFrame = null;
+        }
+        outbound.drainTo(undelivered);
+        if (!undelivered.isEmpty()) {
+            try {
+                listener.onSendFailed(Collections.unmodifiableList(undelivered));
+            } catch (RuntimeException e) {
+                fireError(e);
+            }
+        }
+    }
+
+    private void fireFileReceived(File file) {
+        try {
+            listener.onFileReceived(file);
+        } catch (RuntimeException e) {
+            fireError(e);
+        }
+    }
+
+    private void fireDisconnect(String reason) {
+        try {
+            listener.onDisconnect(reason);
+        } catch (RuntimeException e) {
+            fireError(e);
+        }
+    }
+
+    private void fireError(Exception e) {
+        try {
+            listener.onError(e);
+        } catch (RuntimeException ignored) {
+            // onError 本身出错时无处可报，忽略
+        }
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable == null) {
+            return;
+        }
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            // 忽略关闭异常
+        }
+    }
+
+    private record BufferedMessage(String message, long endOffset) {
+    }
+
+    /**
+     * 单个文件传输连接的状态：先解析文件头（writeUTF 文件名 + long 文件大小），再写入文件内容
+     */
+    private class FileReceiver {
+        private final SocketChannel channel;
+        private ByteBuffer buffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+        private long fileSize = -1;
+        private long received;
+        private File target;
+        private FileChannel fileOut;
+
+        FileReceiver(SocketChannel channel) {
+            this.channel = channel;
+        }
+
+        /**
+         * 读取可用数据，返回 true 表示文件已接收完毕
+         */
+        boolean read() throws IOException {
+            int read = channel.read(buffer);
+            buffer.flip();
+            try {
+                if (fileOut == null && !parseHeader()) {
+                    if (read == -1) {
+                        throw new EOFException("文件头不完整");
+                    }
+                    return false;
+                }
+                while (buffer.hasRemaining() && received < fileSize) {
+                    int limit = buffer.limit();
+                    long remaining = fileSize - received;
+                    if (buffer.remaining() > remaining) {
+                        buffer.limit(buffer.position() + (int) remaining);
+                    }
+                    received += fileOut.write(buffer);
+                    buffer.limit(limit);
+                }
+                if (received >= fileSize) {
+                    return true;
+                }
+                if (read == -1) {
+                    throw new EOFException("文件未接收完整: " + target.getName());
+                }
+                return false;
+            } finally {
+                buffer.compact();
+            }
+        }
+
+        private boolean parseHeader() throws IOException {
+            if (buffer.remaining() < 2) {
+                return false;
+            }
+            int nameLength = buffer.getShort(buffer.position()) & 0xFFFF;
+            int headerLength = 2 + nameLength + Long.BYTES;
+            if (buffer.remaining() < headerLength) {
+                if (buffer.capacity() < headerLength) {
+                    // 文件名过长时扩容，保证文件头能完整放入缓冲区
+                    ByteBuffer larger = ByteBuffer.allocate(headerLength + READ_BUFFER_SIZE);
+                    larger.put(buffer);
+                    larger.flip();
+                    buffer = larger;
+                }
+                return false;
+            }
+            byte[] nameBytes = new byte[2 + nameLength];
+            buffer.get(nameBytes);
+            String fileName = new DataInputStream(new ByteArrayInputStream(nameBytes)).readUTF();
+            fileSize = buffer.getLong();
+            openTarget(RECEIVED_FILE_PREFIX + new File(fileName).getName());
+            return true;
+        }
+
+        /**
+         * 以独占方式创建目标文件，重名时追加序号，避免并发传输写同一个文件
+         */
+        private void openTarget(String name) throws IOException {
+            int dot = name.lastIndexOf('.');
+            String base = dot > 0 ? name.substring(0, dot) : name;
+            String extension = dot > 0 ? name.substring(dot) : "";
+            for (int i = 0; ; i++) {
+                File candidate = new File(downloadDir, i == 0 ? name : base + "(" + i + ")" + extension);
+                try {
+                    fileOut = FileChannel.open(candidate.toPath(), StandardOpenOption.CREATE_NEW,
+                            StandardOpenOption.WRITE);
+                    target = candidate;
+                    return;
+                } catch (FileAlreadyExistsException e) {
+                    // 换下一个序号
+                }
+            }
+        }
+
+        String describe() {
+            return target != null ? target.getName() : "<文件头未接收>";
+        }
+
+        void close() {
+            closeQuietly(fileOut);
+            closeQuietly(channel);
+        }
+
+        /**
+         * 中断传输并删除不完整的文件
+         */
+        void abort() {
+            close();
+            if (target != null && received < fileSize) {
+                target.delete();
+            }
+        }
+    }
+}
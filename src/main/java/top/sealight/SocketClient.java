@@ -1,26 +1,17 @@
 package top.sealight;
 
 import java.io.*;
-import java.net.ServerSocket;
-import java.net.Socket;
-import java.net.SocketException;
 import java.nio.charset.StandardCharsets;
-import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.List;
 
 public class SocketClient {
-    private static final String SERVER_COMMAND_DISCONNECT = "SERVER_COMMAND_DISCONNECT:";
     private static final String DEFAULT_SERVER_IP = "127.0.0.1";
     private static final int DEFAULT_PORT = 12345;
     private static final String EXIT_COMMAND = "exit";
-    private static final String FILE_TRANSFER_COMMAND = "FILE_TRANSFER_PORT:";
-    private static final String MSG_FIN = "MSG_FIN";
-
-    // 使用原子布尔值来安全地控制客户端状态
-    private final AtomicBoolean isRunning = new AtomicBoolean(true);
 
     private final String serverIP;
     private final int port;
-    private Socket socket;
+    private NioSocketClient client;
 
     public SocketClient(String serverIP, int port) {
         this.serverIP = serverIP != null ? serverIP : DEFAULT_SERVER_IP;
@@ -36,102 +27,28 @@ public class SocketClient {
         }
     }
 
-    private void receiveMessages(BufferedReader socketReader) throws IOException {
-        String response;
-        while (isRunning.get() && (response = socketReader.readLine()) != null) {
-            if (response.startsWith(SERVER_COMMAND_DISCONNECT)) {
-                handleServerDisconnect(response);
-                break;
-            }
-            if (response.startsWith(FILE_TRANSFER_COMMAND)) {
-                // 处理文件传输
-                handleFileTransfer(response);
-                continue;
-            }
-            System.out.println("Server: " + response);
-        }
-    }
-
-    private void handleFileTransfer(String response) {
-        try {
-            int filePort = Integer.parseInt(response.substring(FILE_TRANSFER_COMMAND.length()));
-            // 建立文件传输连接
-            try (Socket fileSocket = new Socket(serverIP, filePort);
-                 DataInputStream dataIn = new DataInputStream(fileSocket.getInputStream())) {
-                
-                String fileName = dataIn.readUTF();
-                long fileSize = dataIn.readLong();
-                
-                File savedFile = new File("received_" + fileName);
-                try (BufferedOutputStream fileOut = new BufferedOutputStream(new FileOutputStream(savedFile))) {
-                    byte[] buffer = new byte[4096];
-                    long bytesRead = 0;
-                    int read;
-                    while (bytesRead < fileSize && (read = dataIn.read(buffer)) != -1) {
-                        fileOut.write(buffer, 0, read);
-                        bytesRead += read;
-                    }
-                    fileOut.flush();
-                    System.out.println("已接收文件: " + savedFile.getAbsolutePath());
-                }
-            }
-        } catch (IOException | NumberFormatException e) {
-            System.err.println("接收文件时出错: " + e.getMessage());
-        }
-    }
-    
-
     private void connectToServer() throws IOException {
-        socket = new Socket(serverIP, port);
+        client = new NioSocketClient(serverIP, port, new ConsoleListener());
+        client.connect();
         System.out.printf("已连接到服务器: %s:%d%n", serverIP, port);
     }
 
     private void startMessageHandling() {
-        try (BufferedReader consoleReader = new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8));
-             BufferedReader socketReader = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
-             BufferedWriter socketWriter = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8))) {
-
-            // 启动接收消息的线程
-            Thread receiveThread = startReceiveThread(socketReader);
-
-            // 处理发送消息
-            handleUserInput(consoleReader, socketWriter);
-
-            // 清理资源
-            cleanup(receiveThread);
-
-        } catch (IOException | InterruptedException e) {
-            handleError(e);
+        try (BufferedReader consoleReader = new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8))) {
+            // 收发均由 NioSocketClient 的 I/O 线程处理，这里只负责读取控制台输入
+            handleUserInput(consoleReader);
+        } catch (IOException e) {
+            System.err.println("客户端运行异常：" + e.getMessage());
+        } finally {
+            client.close();
         }
     }
 
-    private Thread startReceiveThread(BufferedReader socketReader) {
-        Thread receiveThread = new Thread(() -> {
-            try {
-                receiveMessages(socketReader);
-            } catch (IOException e) {
-                if (isRunning.get()) {
-                    System.err.println("接收服务器消息时出现异常: " + e.getMessage());
-                }
-            }
-        });
-        receiveThread.setDaemon(true);
-        receiveThread.start();
-        return receiveThread;
-    }
-
-
-    private void handleServerDisconnect(String response) {
-        String message = response.substring(SERVER_COMMAND_DISCONNECT.length());
-        System.out.println("服务器通知: " + message);
-        shutdown();
-    }
-
-    private void handleUserInput(BufferedReader consoleReader, BufferedWriter socketWriter) throws IOException {
+    private void handleUserInput(BufferedReader consoleReader) throws IOException {
         System.out.println("请输入要发送给服务器的消息，连续两次回车发送，输入exit退出：");
         MessageBuilder messageBuilder = new MessageBuilder();
 
-        while (isRunning.get()) {
+        while (client.isConnected()) {
             String line = consoleReader.readLine();
             if (line == null || EXIT_COMMAND.equalsIgnoreCase(line.trim())) {
                 break;
@@ -139,50 +56,45 @@ public class SocketClient {
 
             if (messageBuilder.appendLine(line)) {
                 String message = messageBuilder.getMessage();
-                if (!message.isEmpty()) {
-                    sendMessage(socketWriter, message);
+                if (!message.isEmpty() && !client.send(message)) {
+                    if (!client.isConnected()) {
+                        System.err.println("发送失败：与服务器的连接已断开");
+                        break;
+                    }
+                    System.err.println("发送失败：发送队列已满，请稍后重试");
+                } else {
+                    System.out.println("消息已发送，请继续输入（连续两次回车发送，输入exit退出）：");
                 }
                 messageBuilder.reset();
-                System.out.println("消息已发送，请继续输入（连续两次回车发送，输入exit退出）：");
             }
         }
     }
 
-    private void sendMessage(BufferedWriter writer, String message) throws IOException {
-        writer.write(message+MSG_FIN);
-        writer.newLine();
-        writer.flush();
-    }
+    // 内部类用于将客户端事件输出到控制台
+    private static class ConsoleListener implements NioSocketClient.Listener {
+        @Override
+        public void onMessage(String message) {
+            System.out.println("Server: " + message);
+        }
 
-    private void cleanup(Thread receiveThread) throws IOException, InterruptedException {
-        shutdown();
-        if (socket != null && !socket.isClosed()) {
-            socket.shutdownOutput();
+        @Override
+        public void onFileReceived(File file) {
+            System.out.println("已接收文件: " + file.getAbsolutePath());
         }
-        receiveThread.join(5000); // 等待接收线程最多5秒
-    }
 
-    private void shutdown() {
-        isRunning.set(false);
-        try {
-            if (socket != null && !socket.isClosed()) {
-                socket.close();
-            }
-        } catch (IOException e) {
-            System.err.println("关闭socket时出现异常: " + e.getMessage());
+        @Override
+        public void onDisconnect(String reason) {
+            System.out.println("服务器通知: " + reason);
         }
-    }
 
-    private void handleError(Exception e) {
-        if (e instanceof SocketException && !isRunning.get()) {
-            // 正常关闭导致的异常，忽略
-            return;
+        @Override
+        public void onSendFailed(List<String> messages) {
+            System.err.println("有 " + messages.size() + " 条消息未能发送");
         }
-        if (e instanceof InterruptedException) {
-            Thread.currentThread().interrupt();
-            System.err.println("客户端被中断：" + e.getMessage());
-        } else {
-            System.err.println("客户端运行异常：" + e.getMessage());
+
+        @Override
+        public void onError(Exception e) {
+            System.err.println("通信异常: " + e.getMessage());
         }
     }
 
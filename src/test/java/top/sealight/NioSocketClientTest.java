@@ -0,0 +1,401 @@
+package top.sealight;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.*;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class NioSocketClientTest {
+    private static final long TIMEOUT_SECONDS = 10;
+
+    @TempDir
+    Path downloadDir;
+
+    private ServerSocket serverSocket;
+    private Socket serverSide;
+    private BufferedWriter serverWriter;
+    private BufferedReader serverReader;
+    private NioSocketClient client;
+    private final RecordingListener listener = new RecordingListener();
+
+    @BeforeEach
+    void setUp() throws IOException {
+        serverSocket = new ServerSocket(0);
+    }
+
+    @AfterEach
+    void tearDown() throws IOException {
+        if (client != null) {
+            client.close();
+        }
+        if (serverSide != null) {
+            serverSide.close();
+        }
+        serverSocket.close();
+    }
+
+    private void connect() throws IOException {
+        connect(NioSocketClient.DEFAULT_QUEUE_CAPACITY);
+    }
+
+    private void connect(int queueCapacity) throws IOException {
+        client = new NioSocketClient("127.0.0.1", serverSocket.getLocalPort(), listener,
+                downloadDir.toFile(), queueCapacity);
+        client.connect();
+        serverSide = serverSocket.accept();
+        serverWriter = new BufferedWriter(new OutputStreamWriter(serverSide.getOutputStream(), StandardCharsets.UTF_8));
+        serverReader = new BufferedReader(new InputStreamReader(serverSide.getInputStream(), StandardCharsets.UTF_8));
+    }
+
+    private void serverSend(String line) throws IOException {
+        serverWriter.write(line);
+        serverWriter.newLine();
+        serverWriter.flush();
+    }
+
+    /**
+     * 通知客户端建立文件连接，返回服务器端的文件输出流
+     */
+    private DataOutputStream openFileTransfer(ServerSocket fileServer) throws IOException {
+        serverSend("FILE_TRANSFER_PORT:" + fileServer.getLocalPort());
+        Socket fileSocket = fileServer.accept();
+        return new DataOutputStream(fileSocket.getOutputStream());
+    }
+
+    private static byte[] header(String fileName, long fileSize) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeUTF(fileName);
+        out.writeLong(fileSize);
+        return bytes.toByteArray();
+    }
+
+    @Test
+    void receivesChatMessages() throws Exception {
+        connect();
+        serverSend("你好");
+        serverSend("second");
+
+        assertEquals("你好", listener.messages.poll(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        assertEquals("second", listener.messages.poll(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+    }
+
+    @Test
+    void sendsFramesLargerThanWriteBuffer() throws Exception {
+        connect();
+        String large = "x".repeat(NioSocketClient.WRITE_BUFFER_SIZE * 3);
+
+        assertTrue(client.send("small"));
+        assertTrue(client.send(large));
+        assertTrue(client.send("after"));
+
+        assertEquals("small" + "MSG_FIN", serverReader.readLine());
+        assertEquals(large + "MSG_FIN", serverReader.readLine());
+        assertEquals("after" + "MSG_FIN", serverReader.readLine());
+    }
+
+    @Test
+    void writeBufferShrinksAfterOversizedFrame() throws Exception {
+        connect();
+        String large = "x".repeat(NioSocketClient.WRITE_BUFFER_SIZE * 3);
+        assertTrue(client.send(large));
+        assertEquals(large + "MSG_FIN", serverReader.readLine());
+
+        for (int i = 0; i < 100; i++) {
+            assertTrue(client.send("small " + i));
+        }
+        for (int i = 0; i < 100; i++) {
+            assertEquals("small " + i + "MSG_FIN", serverReader.readLine());
+        }
+        assertEquals(NioSocketClient.WRITE_BUFFER_SIZE, client.writeBufferCapacity());
+    }
+
+    @Test
+    void unknownHostFailsWithUnknownHostException() {
+        client = new NioSocketClient("no.such.host.invalid", serverSocket.getLocalPort(), listener);
+
+        assertThrows(UnknownHostException.class, () -> client.connect());
+        assertFalse(client.isConnected());
+        assertFalse(client.send("message"));
+        assertThrows(IllegalStateException.class, () -> client.connect());
+    }
+
+    @Test
+    void invalidPortLeavesClientClosed() {
+        client = new NioSocketClient("127.0.0.1", 70000, listener);
+
+        assertThrows(IllegalArgumentException.class, () -> client.connect());
+        assertFalse(client.isConnected());
+        assertThrows(IllegalStateException.class, () -> client.connect());
+    }
+
+    @Test
+    void receivesFileWithHeaderSplitAcrossReads() throws Exception {
+        connect();
+        byte[] content = "文件内容".getBytes(StandardCharsets.UTF_8);
+        try (ServerSocket fileServer = new ServerSocket(0);
+             DataOutputStream out = openFileTransfer(fileServer)) {
+            for (byte b : header("split.txt", content.length)) {
+                out.write(b);
+                out.flush();
+                Thread.sleep(5);
+            }
+            out.write(content);
+        }
+
+        File file = listener.files.poll(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        assertNotNull(file);
+        assertEquals("received_split.txt", file.getName());
+        assertArrayEquals(content, Files.readAllBytes(file.toPath()));
+    }
+
+    @Test
+    void receivesFileWithNameLongerThanReadBuffer() throws Exception {
+        connect();
+        // 文件头超过 8KB，目录部分会被去掉，只保留最后的文件名
+        String longName = "dir/".repeat(3000) + "long.bin";
+        byte[] content = {1, 2, 3};
+        try (ServerSocket fileServer = new ServerSocket(0);
+             DataOutputStream out = openFileTransfer(fileServer)) {
+            out.write(header(longName, content.length));
+            out.write(content);
+        }
+
+        File file = listener.files.poll(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        assertNotNull(file);
+        assertEquals("received_long.bin", file.getName());
+        assertArrayEquals(content, Files.readAllBytes(file.toPath()));
+    }
+
+    @Test
+    void receivesZeroLengthFile() throws Exception {
+        connect();
+        try (ServerSocket fileServer = new ServerSocket(0);
+             DataOutputStream out = openFileTransfer(fileServer)) {
+            out.write(header("empty.txt", 0));
+        }
+
+        File file = listener.files.poll(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        assertNotNull(file);
+        assertEquals(0, file.length());
+    }
+
+    @Test
+    void doesNotOverwriteFilesWithSameName() throws Exception {
+        connect();
+        List<File> files = new ArrayList<>();
+        for (int i = 0; i < 2; i++) {
+            try (ServerSocket fileServer = new ServerSocket(0);
+                 DataOutputStream out = openFileTransfer(fileServer)) {
+                out.write(header("same.txt", 1));
+                out.write(i);
+            }
+            File file = listener.files.poll(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            assertNotNull(file);
+            files.add(file);
+        }
+
+        File first = files.get(0);
+        File second = files.get(1);
+        assertEquals("received_same.txt", first.getName());
+        assertEquals("received_same(1).txt", second.getName());
+        assertArrayEquals(new byte[]{0}, Files.readAllBytes(first.toPath()));
+        assertArrayEquals(new byte[]{1}, Files.readAllBytes(second.toPath()));
+    }
+
+    @Test
+    void deliversChatWhileFileIsInProgress() throws Exception {
+        connect();
+        byte[] content = new byte[100_000];
+        try (ServerSocket fileServer = new ServerSocket(0);
+             DataOutputStream out = openFileTransfer(fileServer)) {
+            out.write(header("big.bin", content.length));
+            out.write(content, 0, 1000);
+            out.flush();
+
+            serverSend("chat during transfer");
+            assertEquals("chat during transfer", listener.messages.poll(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+            assertTrue(listener.files.isEmpty());
+
+            out.write(content, 1000, content.length - 1000);
+        }
+
+        File file = listener.files.poll(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        assertNotNull(file);
+        assertEquals(content.length, file.length());
+
+        client.close();
+        assertTrue(listener.errors.isEmpty());
+    }
+
+    @Test
+    void deletesIncompleteFileWhenTransferIsCut() throws Exception {
+        connect();
+        try (ServerSocket fileServer = new ServerSocket(0);
+             DataOutputStream out = openFileTransfer(fileServer)) {
+            out.write(header("cut.bin", 10));
+            out.write(new byte[3]);
+        }
+
+        assertInstanceOf(EOFException.class, listener.errors.poll(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        assertFalse(new File(downloadDir.toFile(), "received_cut.bin").exists());
+        assertTrue(client.isConnected());
+    }
+
+    @Test
+    void listenerExceptionDoesNotStopIoThread() throws Exception {
+        listener.failOn = "boom";
+        connect();
+        serverSend("boom");
+        serverSend("still alive");
+
+        assertInstanceOf(IllegalStateException.class, listener.errors.poll(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        assertEquals("still alive", listener.messages.poll(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        assertTrue(client.isConnected());
+        assertTrue(client.send("ping"));
+        assertEquals("ping" + "MSG_FIN", serverReader.readLine());
+    }
+
+    @Test
+    void serverDisconnectClosesClient() throws Exception {
+        connect();
+        serverSend("SERVER_COMMAND_DISCONNECT:bye");
+
+        assertEquals("bye", listener.disconnects.poll(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        assertFalse(client.isConnected());
+        assertFalse(client.send("late"));
+        assertNull(serverReader.readLine());
+    }
+
+    @Test
+    void clientCannotReconnect() throws Exception {
+        listener.onDisconnectAction = () -> {
+            try {
+                client.connect();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        };
+        connect();
+        serverSide.close();
+        serverSide = null;
+
+        assertEquals("服务器已关闭连接", listener.disconnects.poll(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        assertInstanceOf(IllegalStateException.class, listener.errors.poll(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        assertThrows(IllegalStateException.class, () -> client.connect());
+    }
+
+    @Test
+    void closeBeforeConnectRejectsConnect() {
+        client = new NioSocketClient("127.0.0.1", serverSocket.getLocalPort(), listener);
+        client.close();
+
+        assertFalse(client.send("message"));
+        assertThrows(IllegalStateException.class, () -> client.connect());
+    }
+
+    @Test
+    void closeFlushesQueuedMessages() throws Exception {
+        connect();
+        for (int i = 0; i < 100; i++) {
+            assertTrue(client.send("message " + i));
+        }
+        client.close();
+
+        for (int i = 0; i < 100; i++) {
+            assertEquals("message " + i + "MSG_FIN", serverReader.readLine());
+        }
+        assertNull(serverReader.readLine());
+        assertTrue(listener.sendFailures.isEmpty());
+    }
+
+    @Test
+    void fullQueueRejectsSendAndCloseReportsUnsentMessages() throws Exception {
+        // 固定较小的接收缓冲区，避免内核自动扩容吞下所有数据
+        serverSocket.close();
+        serverSocket = new ServerSocket();
+        serverSocket.setReceiveBufferSize(8192);
+        serverSocket.bind(null);
+        connect(4);
+        // 服务器不读取数据，直到套接字缓冲区和发送队列都被填满
+        String chunk = "y".repeat(64 * 1024);
+        List<String> accepted = new ArrayList<>();
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(TIMEOUT_SECONDS);
+        while (System.nanoTime() < deadline) {
+            String message = chunk + accepted.size();
+            if (!client.send(message, 200, TimeUnit.MILLISECONDS)) {
+                break;
+            }
+            accepted.add(message);
+        }
+        assertTrue(client.isConnected());
+        assertFalse(client.send(chunk));
+
+        long start = System.nanoTime();
+        client.close();
+        assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(TIMEOUT_SECONDS));
+        assertFalse(client.isConnected());
+
+        List<String> failed = listener.sendFailures.poll(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        assertNotNull(failed);
+        assertFalse(failed.isEmpty());
+        assertEquals(accepted.subList(accepted.size() - failed.size(), accepted.size()), failed);
+    }
+
+    private static class RecordingListener implements NioSocketClient.Listener {
+        final BlockingQueue<String> messages = new LinkedBlockingQueue<>();
+        final BlockingQueue<File> files = new LinkedBlockingQueue<>();
+        final BlockingQueue<String> disconnects = new LinkedBlockingQueue<>();
+        final BlockingQueue<List<String>> sendFailures = new LinkedBlockingQueue<>();
+        final BlockingQueue<Exception> errors = new LinkedBlockingQueue<>();
+        volatile String failOn;
+        volatile Runnable onDisconnectAction;
+
+        @Override
+        public void onMessage(String message) {
+            if (message.equals(failOn)) {
+                throw new IllegalStateException("listener failure");
+            }
+            messages.add(message);
+        }
+
+        @Override
+        public void onFileReceived(File file) {
+            files.add(file);
+        }
+
+        @Override
+        public void onDisconnect(String reason) {
+            disconnects.add(reason);
+            Runnable action = onDisconnectAction;
+            if (action != null) {
+                action.run();
+            }
+        }
+
+        @Override
+        public void onSendFailed(List<String> messages) {
+            sendFailures.add(messages);
+        }
+
+        @Override
+        public void onError(Exception e) {
+            errors.add(e);
+        }
+    }
+}